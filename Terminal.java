@@ -1,12 +1,64 @@
 import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * An alternative Terminal class that additionally provides possibilities for automatic testing. All
@@ -29,13 +81,39 @@ import java.util.concurrent.TimeoutException;
  * {@code printPolicy} the input and output and/or failure messages will be printed to
  * {@code System.out}, or not. The {@code cancelPolicy} determines whether the tests will be
  * canceled or continued at failures. And {@code setTimeOut(long millis)} specifies how long the
- * test will wait for answers.
+ * test will wait for answers. Alternatively, {@code setVirtualTime(true)} replaces the fixed timeouts
+ * by waiting exactly as long as the tested program can still make progress.
+ * <p>
+ * Instead of printing to {@code System.out}, the events of the tests can be passed to a
+ * {@code Terminal.Reporter} by {@code setReporter(Reporter reporter)}. Reporters run on a background
+ * thread, so that writing reports does not slow down the tests. Reporters for JUnit XML, TAP and
+ * JSON lines are provided.
+ * <p>
+ * Test sessions and policies are bound to the thread that invokes {@code initTestSession} (and to
+ * the threads of the tested program), so independent tests can run concurrently in separate
+ * threads. {@code TerminalExtension} (in {@code junit/}) integrates the tests with JUnit Jupiter,
+ * including its parallel execution.
+ * <p>
+ * Programs that use {@code System.out} and {@code System.in} directly instead of the Terminal can be
+ * tested after invoking {@code setConsoleInterception(true)}. Their console input and output is
+ * then handled like {@code readLine()} and {@code printLine()}.
  * <p>
  * By {@code enforceExit()} the termination of the tested program can be enforced. For this method
  * and canceling working properly, the tested program <b>must not</b> catch general
  * RuntimeExceptions (or a supertype) thrown by {@code readLine()} or a print method. An additional
  * utility is provided by {@code runCancelingTest(Runnable test)}, which enables to run a test
  * method, that will be canceled at failures, without canceling the entire test.
+ * {@code runCachedTest(String scenario, Runnable test, Class... programClasses)} additionally skips
+ * tests that already passed for the same program and scenario in a previous run, and
+ * {@code runSharded(int shards, Class suite, String... scenarios)} runs the test methods of a suite
+ * in several separate JVMs. Memory leaks of long running programs can be detected by
+ * {@code soakTest(Runnable main, long iterations, Runnable command)}. Failures caused by timeouts
+ * include the stack of the tested program, and {@code setProfiler(PrintStream out, long millis)}
+ * samples the stack of the tested program for each input command.
+ * <p>
+ * Outside of tests, {@code startRecording(Path log)} or the system property {@code terminal.record}
+ * record the input and output of the program, which can be replayed as test by
+ * {@code replay(Path log, Runnable main)}.
  * <p>
  *
  * Code Example: <blockquote>
@@ -107,6 +185,11 @@ public class Terminal {
      * CancelPolicy of canceling the test at failures and in/out mismatches
      */
     public static final int CANCEL_ALWAYS = 8;
+    /**
+     * CancelPolicy of canceling the test at failures and in/out mismatches by throwing an
+     * {@code AssertionError} with the failure message, as expected by test frameworks
+     */
+    public static final int CANCEL_ASSERT = 9;
 
     /**
      * Reads text from the "standard" input stream, buffering characters so as to provide for the
@@ -115,13 +198,47 @@ public class Terminal {
      */
     private static final BufferedReader IN = new BufferedReader(new InputStreamReader(System.in));
 
-    private static final SynchronousQueue<String> transferQueue = new SynchronousQueue<>();
-    private static final SynchronousQueue<Throwable> exitQueue = new SynchronousQueue<>();
-    private static CyclicBarrier barrier = new CyclicBarrier(2);
-    private static Thread testThread = new Thread("test thread");
-    private static int printPolicy = 3, cancelPolicy = 6;
-    private static long timeOut = 100;
-    private static boolean isTesting = false;
+    private static final ThreadLocal<Session> SESSION = new ThreadLocal<>();
+    private static final ThreadLocal<Session> PROGRAM = new InheritableThreadLocal<>();
+    private static final AtomicInteger sessionCount = new AtomicInteger();
+    private static final AtomicInteger activeSessions = new AtomicInteger();
+    private static volatile boolean isTesting = false;
+    private static PrintStream console = null;
+    private static InputStream consoleIn = null;
+
+    private static final int WAIT_NONE = 0, WAIT_INPUT = 1, WAIT_OUTPUT = 2, WAIT_EXIT = 3;
+    private static final long SLICE = 1;
+    private static final int REPORT_CAPACITY = 1024;
+    private static final int CACHE_SIZE = 1000;
+    private static final String TIMINGS = "timings.properties";
+    private static final String RESULT_PREFIX = "\u0001terminal result\t";
+    private static final String EVENT_PREFIX = "\u0001terminal event\t";
+    private static final long SHARD_TIMEOUT = 600000;
+    private static final int SOAK_SAMPLES = 20;
+    private static final long LEAK_THRESHOLD = 1 << 20;
+    private static final int STACK_DEPTH = 10;
+    private static final int CHUNK_SIZE = 8192;
+    private static final int RECORD_CAPACITY = 4096;
+    private static final long RECORD_STOP_TIMEOUT = 10000;
+    private static final int RECORD_MAGIC = 0x54524d31;
+    private static final int RECORD_START = 0, RECORD_INPUT = 1, RECORD_OUTPUT = 2;
+    private static final long TIMING_TOLERANCE = 1000000;
+    private static final Event END_OF_REPORT = new Event(null, 0, null);
+    private static volatile BlockingQueue<Event> reportQueue = null;
+    private static Thread reportThread = null;
+    private static volatile Path cacheDirectory = Paths.get(".terminal-cache");
+    private static final Map<Path, byte[]> codeSourceDigests = new ConcurrentHashMap<>();
+    private static final Record END_OF_RECORDING = new Record(RECORD_START, null);
+    private static volatile BlockingQueue<Record> recordQueue = null;
+    private static Thread recordThread = null;
+    private static boolean isRecordHookAdded = false;
+
+    static {
+        String log = System.getProperty("terminal.record");
+        if (log != null) {
+            startRecording(Paths.get(log));
+        }
+    }
 
     private static class ExitException extends RuntimeException {
         private static final long serialVersionUID = 1L;
@@ -139,243 +256,2170 @@ public class Terminal {
     }
 
     /**
-     * Exception indicating that the test has been canceled.
+     * The state of the test sessions of a thread. It is shared by the thread that started the
+     * session and the threads of the tested program.
      */
-    public static class CancelException extends RuntimeException {
-        private static final long serialVersionUID = 1L;
+    public static final class Session {
+        private final SynchronousQueue<Object> transferQueue = new SynchronousQueue<>();
+        private final ArrayDeque<String> pendingOutput = new ArrayDeque<>();
+        private final SynchronousQueue<Throwable> exitQueue = new SynchronousQueue<>();
+        private volatile CyclicBarrier barrier = new CyclicBarrier(2);
+        private volatile Thread testThread = new Thread("test thread");
+        private volatile int printPolicy = 3, cancelPolicy = 6;
+        private volatile long timeOut = 100;
+        private volatile boolean isTesting = false;
+        private volatile boolean virtualTime = false;
+        private volatile int id = 0;
+        private volatile Thread driver = null;
+        private volatile boolean isFinished = false;
+        private volatile ThreadGroup group = null;
+        private volatile int driverWait = WAIT_NONE;
+        private volatile long driverWaitCount = 0;
+        private final Map<Thread, Integer> programWaits = new ConcurrentHashMap<>();
+        private final AtomicLong progress = new AtomicLong();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile String programFailure = null;
+        private volatile String command = "";
+        private volatile PrintStream profileOut = null;
+        private volatile long profileInterval = 0;
 
-        CancelException() {
-            super();
+        Session() {
+        }
+
+        /**
+         * Returns the number of the current test session, counting from 1 over all threads.
+         *
+         * @return the number of the session, or 0 if no session has been started yet
+         */
+        public int getId() {
+            return id;
+        }
+
+        /**
+         * Returns whether the tested program of the current test session is still running.
+         *
+         * @return true, if the tested program is running
+         */
+        public boolean isRunning() {
+            return testThread.isAlive();
+        }
+
+        /**
+         * Returns the number of failures and mismatches of the test sessions, including those
+         * detected by the tested program (e.g. an unexpected {@code readLine()}).
+         *
+         * @return the number of failures and mismatches
+         */
+        public int getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * Returns the message of the last mismatch detected by the tested program, which is counted
+         * when the program fails, even if the test already finished.
+         *
+         * @return the message, or {@code null} if the tested program did not fail
+         */
+        public String getProgramFailure() {
+            return programFailure;
+        }
+
+        /**
+         * Marks the test as finished and waits for the tested program to terminate, so that its
+         * mismatches are counted: a program still waiting for input or for its output to be read
+         * fails as usual, after twice the {@code timeOut} or at once with virtual time. Returns
+         * whether the program terminated.
+         */
+        boolean awaitProgram() {
+            isFinished = true;
+            try {
+                testThread.join(timeOut << 2);
+            } catch (InterruptedException e) {
+                // the interrupt must reach the caller
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return !testThread.isAlive();
         }
     }
 
     /**
-     * Private constructor to avoid object generation.
-     *
-     * @deprecated Utility-class constructor.
+     * An input or output of the program, as recorded by {@code startRecording}.
      */
-    @Deprecated
-    private Terminal() {
-        throw new AssertionError("Utility class constructor.");
+    private static final class Record {
+        final int type;
+        final long nanos;
+        final String text;
+
+        Record(int type, String text) {
+            this.type = type;
+            this.nanos = System.nanoTime();
+            this.text = text;
+        }
+    }
+
+    /**
+     * A single attempt of waiting for the counterpart of a test session.
+     */
+    private interface Attempt<T> {
+        /**
+         * @return the result, or {@code null} if the attempt timed out
+         */
+        T attempt(long millis) throws InterruptedException;
     }
 
-    private static void printInOut(String s) {
-        if ((printPolicy & 1) != 0) {
-            System.out.println(s);
+    /**
+     * Splits the bytes written by a thread of the tested program into lines and passes them to
+     * {@code printLine()}.
+     */
+    private static class ProgramOutputStream extends OutputStream {
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        @Override
+        public void write(int b) {
+            if (b == '\n') {
+                String s = line.toString();
+                line.reset();
+                printLine(s.endsWith("\r") ? s.substring(0, s.length() - 1) : s);
+            } else {
+                line.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(b[i]);
+            }
         }
     }
 
-    private static void reportError(String message, boolean isMismatch) {
-        if (printPolicy > 1) {
-            System.out.println((isMismatch ? ">>> MISMATCH: " : ">>> FAILURE: ") + message);
+    /**
+     * Replacement of {@code System.out} that routes the output of the threads of tested programs
+     * to their test session, using a separate stream per thread. The output of all other threads is
+     * passed to the original stream.
+     */
+    private static class RoutingPrintStream extends PrintStream {
+        private final ThreadLocal<PrintStream> programOut = ThreadLocal
+                .withInitial(() -> new PrintStream(new ProgramOutputStream(), true));
+
+        RoutingPrintStream(PrintStream original) {
+            super(original, true);
         }
-        if (cancelPolicy >= 8 || (isMismatch && cancelPolicy >= 7)) {
-            enforceExit();
-            throw new CancelException();
+
+        private PrintStream target() {
+            if (activeSessions.get() == 0 || PROGRAM.get() == null) {
+                return console;
+            }
+            return programOut.get();
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+
+        @Override
+        public void close() {
+            target().close();
+        }
+
+        @Override
+        public boolean checkError() {
+            return target().checkError();
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            target().write(buf, off, len);
+        }
+
+        @Override
+        public void print(boolean b) {
+            target().print(b);
+        }
+
+        @Override
+        public void print(char c) {
+            target().print(c);
+        }
+
+        @Override
+        public void print(int i) {
+            target().print(i);
+        }
+
+        @Override
+        public void print(long l) {
+            target().print(l);
+        }
+
+        @Override
+        public void print(float f) {
+            target().print(f);
+        }
+
+        @Override
+        public void print(double d) {
+            target().print(d);
+        }
+
+        @Override
+        public void print(char[] s) {
+            target().print(s);
+        }
+
+        @Override
+        public void print(String s) {
+            target().print(s);
+        }
+
+        @Override
+        public void print(Object obj) {
+            target().print(obj);
+        }
+
+        @Override
+        public void println() {
+            target().println();
+        }
+
+        @Override
+        public void println(boolean x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(char x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(int x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(long x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(float x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(double x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(char[] x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(String x) {
+            target().println(x);
+        }
+
+        @Override
+        public void println(Object x) {
+            target().println(x);
+        }
+
+        @Override
+        public PrintStream printf(String format, Object... args) {
+            target().printf(format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream printf(Locale l, String format, Object... args) {
+            target().printf(l, format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream format(String format, Object... args) {
+            target().format(format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream format(Locale l, String format, Object... args) {
+            target().format(l, format, args);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(CharSequence csq) {
+            target().append(csq);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(CharSequence csq, int start, int end) {
+            target().append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public PrintStream append(char c) {
+            target().append(c);
+            return this;
         }
     }
 
-    private static boolean assertString(String message, boolean prefix, boolean randomOrder, String... expected) {
-        boolean result = true;
-        for (int i = 0; i < expected.length; i++) {
-            String out = nextOutput(message);
-            if (out == null) {
-                return false;
+    /**
+     * Replacement of {@code System.in} that passes the input of the test session to the threads of
+     * tested programs, line by line as received by {@code readLine()}. All other threads read from
+     * the original stream.
+     */
+    private static class RoutingInputStream extends InputStream {
+        private final ThreadLocal<byte[]> line = new ThreadLocal<>();
+        private final ThreadLocal<int[]> position = ThreadLocal.withInitial(() -> new int[1]);
+
+        private boolean isRouted() {
+            return activeSessions.get() != 0 && PROGRAM.get() != null;
+        }
+
+        private byte[] nextLine() {
+            byte[] b = line.get();
+            int[] pos = position.get();
+            if (b == null || pos[0] == b.length) {
+                b = (readLine() + System.lineSeparator()).getBytes();
+                line.set(b);
+                pos[0] = 0;
             }
-            int pos = -1, max = randomOrder ? expected.length : i + 1;
-            for (int j = i; j < max; j++) {
-                if (prefix ? out.startsWith(expected[j]) : out.equals(expected[j])) {
-                    pos = j;
-                    if (i != j) {
-                        String puffer = expected[i];
-                        expected[i] = expected[j];
-                        expected[j] = puffer;
+            return b;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!isRouted()) {
+                return consoleIn.read();
+            }
+            byte[] b = nextLine();
+            return b[position.get()[0]++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) throws IOException {
+            if (!isRouted()) {
+                return consoleIn.read(buf, off, len);
+            }
+            if (len == 0) {
+                return 0;
+            }
+            byte[] b = nextLine();
+            int[] pos = position.get();
+            int n = Math.min(len, b.length - pos[0]);
+            System.arraycopy(b, pos[0], buf, off, n);
+            pos[0] += n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (!isRouted()) {
+                return consoleIn.available();
+            }
+            byte[] b = line.get();
+            return b == null ? 0 : b.length - position.get()[0];
+        }
+    }
+
+    /**
+     * Entry point of the child JVMs started by {@code runSharded}. Runs the given test methods and
+     * prints a result line for each of them, preceded by an event line for each of its events (except
+     * {@code START}).
+     * <p>
+     * Arguments: printPolicy, cancelPolicy, timeOut, suite class, names of the test methods
+     */
+    static final class Shard {
+        private Shard() {
+        }
+
+        public static void main(String[] args) throws ClassNotFoundException {
+            Class<?> suite = Class.forName(args[3]);
+            for (int i = 4; i < args.length; i++) {
+                setPrintPolicy(Integer.parseInt(args[0]));
+                setCancelPolicy(Integer.parseInt(args[1]));
+                setTimeOut(Long.parseLong(args[2]));
+                // a reporter per test method, so all its events are written before its result
+                setReporter(new Reporter() {
+                    @Override
+                    public void report(Event event) {
+                        if (event.kind != Event.Kind.START) {
+                            console().println(EVENT_PREFIX + event.kind + "\t" + escape(event.text));
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                        console().flush();
                     }
+                });
+                long start = System.nanoTime();
+                boolean passed;
+                try {
+                    Method method = suite.getMethod(args[i]);
+                    passed = runCounted(() -> {
+                        try {
+                            method.invoke(null);
+                        } catch (InvocationTargetException e) {
+                            if (e.getCause() instanceof RuntimeException) {
+                                throw (RuntimeException) e.getCause();
+                            }
+                            throw new RuntimeException(e.getCause());
+                        } catch (IllegalAccessException e) {
+                            throw new RuntimeException(e);
+                        }
+                    });
+                } catch (CancelException e) {
+                    passed = false;
+                } catch (NoSuchMethodException | RuntimeException e) {
+                    e.printStackTrace(console());
+                    passed = false;
                 }
+                resetSession();
+                setReporter(null);
+                console().println(RESULT_PREFIX + args[i] + "\t" + passed + "\t"
+                        + (System.nanoTime() - start) / 1000000);
+                console().flush();
             }
-            if (pos == -1) {
-                reportError(message + "\n>>> Expected: " + expected[i], false);
-                result = false;
+            System.exit(0);
+        }
+
+        /**
+         * Escapes the text of an event, so it fits into a single line without tabs.
+         */
+        static String escape(String text) {
+            return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\r", "\\r").replace("\n", "\\n");
+        }
+
+        static String unescape(String text) {
+            StringBuilder result = new StringBuilder(text.length());
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '\\' && i + 1 < text.length()) {
+                    c = text.charAt(++i);
+                    c = c == 't' ? '\t' : c == 'r' ? '\r' : c == 'n' ? '\n' : c;
+                }
+                result.append(c);
             }
+            return result.toString();
         }
-        return result;
     }
 
     /**
-     * This policy determines what will be print through {@code System.out}. Parameters must be
-     * element of {@code Terminal.{PRINT_NONE, PRINT_IN_OUT, PRINT_FAILURES, PRINT_ALL}}. For
-     * details see the documentation of the constants.
-     * <p>
-     * Default value: {@code PRINT_ALL}
-     *
-     * @param policy the printPolicy to be set
-     * @see #PRINT_NONE
+     * Exception indicating that the test has been canceled.
      */
-    public static void setPrintPolicy(int policy) {
-        if (policy < 0 || policy > 3) {
-            throw new IllegalArgumentException("Illegal printPolicy value.");
+    public static class CancelException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        CancelException() {
+            super();
         }
-        printPolicy = policy;
     }
 
     /**
-     * This policy determines whether the test will be canceled after failures. For canceling, the
-     * testing method will throw a {@code Terminal.CancelException}.
-     * <p>
-     * It is considered a difference between usual failures (meaning that expected and received
-     * <i>value</i> of output differs; "FAILURE" message) and mismatches (meaning that expected and
-     * received <i>order</i> of input/output differs; "MISMATCH" message). So the
-     * {@code CANCEL_AT_MISMATCHES} policy will cancel tests at mismatches, but not at usual
-     * failures.
-     * <p>
-     * Default value: {@code CANCEL_NEVER}
-     *
-     * @param policy whether the test will be canceled at failures
-     * @see #CANCEL_NEVER
+     * An event of a test session, as passed to a {@code Terminal.Reporter}.
      */
-    public static void setCancelPolicy(int policy) {
-        if (policy < 6 || policy > 8) {
-            throw new IllegalArgumentException("Illegal cancelPolicy value.");
+    public static final class Event {
+        /**
+         * The different kinds of events.
+         */
+        public enum Kind {
+            /**
+             * A new test session started, the text is the name of the session
+             */
+            START,
+            /**
+             * The tested program received an input
+             */
+            INPUT,
+            /**
+             * The tested program printed an output
+             */
+            OUTPUT,
+            /**
+             * The tested program terminated with an exception, the text is the exception
+             */
+            EXCEPTION,
+            /**
+             * A replayed output took considerably longer than recorded, the text describes the
+             * difference
+             */
+            TIMING,
+            /**
+             * A test failed, the text is the failure message
+             */
+            FAILURE,
+            /**
+             * The expected and received order of input/output differs, the text is the message
+             */
+            MISMATCH
+        }
+
+        /**
+         * The kind of the event
+         */
+        public final Kind kind;
+        /**
+         * The number of the test session the event belongs to, counting from 1
+         */
+        public final int session;
+        /**
+         * The text of the event, depending on its kind
+         */
+        public final String text;
+        /**
+         * The time of the event, as returned by {@code System.currentTimeMillis()}
+         */
+        public final long time;
+
+        Event(Kind kind, int session, String text) {
+            this.kind = kind;
+            this.session = session;
+            this.text = text;
+            this.time = System.currentTimeMillis();
         }
-        cancelPolicy = policy;
     }
 
     /**
-     * This method determines mainly, how long the test will wait for responses of the tested
-     * program. The default value should work well for most purposes. Increase the value if
-     * expecting very time-expensive calculations, decrease the value for making the test fail more
-     * quickly (and so needing less time).
-     * <p>
-     * More specific, the method additionally determines that vice versa the tested program will
-     * wait the double amount of time for input or acceptance of output (which value is generally of
-     * less importance).
+     * A reporter receives the events of the test sessions instead of {@code System.out}. Which
+     * events are passed depends on the {@code printPolicy}, except for {@code START} events which
+     * are always passed.
      * <p>
-     * Default value: {@code 100}
+     * All methods are invoked by a single background thread, so implementations do not need to be
+     * thread-safe.
      *
-     * @param millis the number of milliseconds the test will wait for responses
+     * @see Terminal#setReporter(Reporter)
      */
-    public static void setTimeOut(long millis) {
-        if (millis < 1) {
-            throw new IllegalArgumentException("TimeOut value must be positive.");
-        }
-        timeOut = millis;
+    public interface Reporter {
+        /**
+         * Handles the next event.
+         *
+         * @param event the event
+         */
+        void report(Event event);
+
+        /**
+         * Called after the last event, when the reporter is replaced or removed.
+         */
+        void close();
     }
 
     /**
-     * Starts a test session. A previous test that is still running will be terminated. For
-     * specifying what to test, a {@code Runnable} is required as parameter, that invokes the
-     * (probably main-) method to be tested.
+     * Reporter writing each event as a single line of JSON.
      * <p>
-     * Example:
+     * Example line:
      *
      * <pre>
-     * Terminal.initTestSession(() -&gt; TestedClass.main(new String[0]));
+     * {"session":1,"kind":"OUTPUT","time":1500000000000,"text":"Ok"}
      * </pre>
-     *
-     * @param main {@code Runnable}, invoking the method to be tested
      */
-    public static void initTestSession(Runnable main) {
-        isTesting = true;
-        enforceExit();
-        barrier = new CyclicBarrier(2);
-        testThread = new Thread(() -> {
-            try {
-                main.run();
-            } catch (ExitException e) {
-                if (!e.interrupted && printPolicy > 1) {
-                    System.out.println(">>> MISMATCH: " + e.getMessage());
+    public static class JsonReporter implements Reporter {
+        private final PrintStream out;
+
+        /**
+         * Creates a reporter writing to the given stream.
+         *
+         * @param out the stream the lines are written to
+         */
+        public JsonReporter(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void report(Event event) {
+            StringBuilder line = new StringBuilder("{\"session\":").append(event.session);
+            line.append(",\"kind\":\"").append(event.kind).append("\",\"time\":").append(event.time);
+            line.append(",\"text\":\"");
+            for (int i = 0; i < event.text.length(); i++) {
+                char c = event.text.charAt(i);
+                switch (c) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                }
+            }
+            out.println(line.append("\"}"));
+        }
+
+        @Override
+        public void close() {
+            out.flush();
+        }
+    }
+
+    /**
+     * Base of reporters that write one result per test session. As sessions of different threads
+     * may run concurrently, the events are grouped by their session and written at the end, in the
+     * order the sessions started.
+     */
+    abstract static class SessionReporter implements Reporter {
+        /**
+         * The events of each session, by session number
+         */
+        final Map<Integer, List<Event>> sessions = new LinkedHashMap<>();
+
+        @Override
+        public void report(Event event) {
+            sessions.computeIfAbsent(event.session, session -> new ArrayList<>()).add(event);
+        }
+
+        static String name(int session, List<Event> events) {
+            Event first = events.get(0);
+            return first.kind == Event.Kind.START ? first.text : "session " + session;
+        }
+
+        static boolean isFailed(List<Event> events) {
+            for (Event event : events) {
+                if (event.kind == Event.Kind.FAILURE || event.kind == Event.Kind.MISMATCH) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        static String format(Event event) {
+            switch (event.kind) {
+            case INPUT:
+                return "> " + event.text;
+            case EXCEPTION:
+                return "An exception occured: " + event.text;
+            case OUTPUT:
+                return event.text;
+            default:
+                return event.kind + ": " + event.text;
+            }
+        }
+    }
+
+    /**
+     * Reporter writing the results of the test sessions in the Test Anything Protocol (TAP). Each
+     * session is a test point, which fails if any failure or mismatch occurred. Failures and
+     * messages are written as diagnostic lines. The results are written at the end, when the
+     * reporter is closed.
+     */
+    public static class TapReporter extends SessionReporter {
+        private final PrintStream out;
+
+        /**
+         * Creates a reporter writing to the given stream.
+         *
+         * @param out the stream the results are written to
+         */
+        public TapReporter(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void close() {
+            int count = 0;
+            for (Map.Entry<Integer, List<Event>> session : sessions.entrySet()) {
+                List<Event> events = session.getValue();
+                out.println((isFailed(events) ? "not ok " : "ok ") + (++count) + " - "
+                        + name(session.getKey(), events));
+                for (Event event : events) {
+                    if (event.kind != Event.Kind.START) {
+                        out.println("# " + format(event).replace("\n", "\n# "));
+                    }
                 }
-            } catch (Throwable t) {
+            }
+            out.println("1.." + count);
+            out.flush();
+        }
+    }
+
+    /**
+     * Reporter writing the results of the test sessions as JUnit XML report, as understood by most
+     * continuous integration servers. Each session is a test case, which fails if any failure or
+     * mismatch occurred. The report is written at the end, when the reporter is closed.
+     */
+    public static class JUnitXmlReporter extends SessionReporter {
+        private final PrintStream out;
+        private final String suiteName;
+
+        /**
+         * Creates a reporter writing to the given stream.
+         *
+         * @param out the stream the report is written to
+         * @param suiteName the name of the test suite
+         */
+        public JUnitXmlReporter(PrintStream out, String suiteName) {
+            this.out = out;
+            this.suiteName = suiteName;
+        }
+
+        private static String escape(String s) {
+            return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+        }
+
+        @Override
+        public void close() {
+            StringBuilder testCases = new StringBuilder();
+            int failed = 0;
+            for (Map.Entry<Integer, List<Event>> session : sessions.entrySet()) {
+                List<Event> events = session.getValue();
+                long time = events.get(events.size() - 1).time - events.get(0).time;
+                testCases.append("  <testcase classname=\"").append(escape(suiteName)).append("\" name=\"")
+                        .append(escape(name(session.getKey(), events))).append("\" time=\"").append(time / 1000.0)
+                        .append("\">\n");
+                StringBuilder output = new StringBuilder();
+                for (Event event : events) {
+                    if (event.kind == Event.Kind.FAILURE || event.kind == Event.Kind.MISMATCH) {
+                        String message = escape(event.text);
+                        testCases.append("    <failure type=\"").append(event.kind).append("\" message=\"")
+                                .append(message).append("\">").append(message).append("</failure>\n");
+                    } else if (event.kind != Event.Kind.START) {
+                        output.append(format(event)).append('\n');
+                    }
+                }
+                if (output.length() > 0) {
+                    testCases.append("    <system-out>").append(escape(output.toString())).append("</system-out>\n");
+                }
+                testCases.append("  </testcase>\n");
+                failed += isFailed(events) ? 1 : 0;
+            }
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.println("<testsuite name=\"" + escape(suiteName) + "\" tests=\"" + sessions.size() + "\" failures=\""
+                    + failed + "\">");
+            out.print(testCases);
+            out.println("</testsuite>");
+            out.flush();
+        }
+    }
+
+    /**
+     * Private constructor to avoid object generation.
+     *
+     * @deprecated Utility-class constructor.
+     */
+    @Deprecated
+    private Terminal() {
+        throw new AssertionError("Utility class constructor.");
+    }
+
+    private static PrintStream console() {
+        PrintStream out = console;
+        return out == null ? System.out : out;
+    }
+
+    static Session session() {
+        Session session = SESSION.get();
+        if (session == null) {
+            // threads started by the tested program belong to its session
+            session = PROGRAM.get();
+            if (session == null) {
+                session = new Session();
+            }
+            SESSION.set(session);
+        }
+        return session;
+    }
+
+    static void resetSession() {
+        enforceExit();
+        SESSION.remove();
+    }
+
+    private static void report(Event.Kind kind, String text) {
+        report(kind, session().id, text);
+    }
+
+    private static void report(Event.Kind kind, int session, String text) {
+        BlockingQueue<Event> queue = reportQueue;
+        if (queue == null) {
+            printEvent(console(), kind, text);
+            return;
+        }
+        try {
+            queue.put(new Event(kind, session, text));
+        } catch (InterruptedException e) {
+            // the event is lost, but the interrupt must reach the tested program
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void printEvent(PrintStream out, Event.Kind kind, String text) {
+        switch (kind) {
+        case INPUT:
+            out.println("> " + text);
+            break;
+        case EXCEPTION:
+            out.println("An exception occured: " + text);
+            break;
+        case TIMING:
+            out.println(">>> TIMING: " + text);
+            break;
+        case FAILURE:
+            out.println(">>> FAILURE: " + text);
+            break;
+        case MISMATCH:
+            out.println(">>> MISMATCH: " + text);
+            break;
+        default:
+            out.println(text);
+        }
+    }
+
+    private static void printInOut(Event.Kind kind, Object s) {
+        if ((session().printPolicy & 1) != 0) {
+            report(kind, String.valueOf(s));
+        }
+    }
+
+    private static void reportError(String message, boolean isMismatch) {
+        reportError(message, null, isMismatch);
+    }
+
+    private static void reportError(String message, String expected, boolean isMismatch) {
+        reportError(message, expected, isMismatch, null);
+    }
+
+    /**
+     * Reports a failure. If the tested program is given, its current stack is appended to the
+     * message.
+     */
+    private static void reportError(String message, String expected, boolean isMismatch, Thread program) {
+        Session session = session();
+        session.failures.incrementAndGet();
+        String text = null;
+        if (session.printPolicy > 1 || session.cancelPolicy == CANCEL_ASSERT) {
+            text = expected == null ? message : message + "\n>>> Expected: " + expected;
+            if (program != null && program.isAlive()) {
+                text += formatStack("\n>>> Program at:", program.getStackTrace());
+            }
+        }
+        if (session.printPolicy > 1) {
+            report(isMismatch ? Event.Kind.MISMATCH : Event.Kind.FAILURE, text);
+        }
+        if (session.cancelPolicy >= 8 || (isMismatch && session.cancelPolicy >= 7)) {
+            enforceExit();
+            if (session.cancelPolicy == CANCEL_ASSERT) {
+                throw new AssertionError(text);
+            }
+            throw new CancelException();
+        }
+    }
+
+    /**
+     * Returns whether the frame belongs to the Terminal or one of its nested classes. Other classes
+     * of the default package may have names starting with {@code Terminal}, too.
+     */
+    private static boolean isTerminalFrame(StackTraceElement frame) {
+        String name = frame.getClassName();
+        return name.equals(Terminal.class.getName()) || name.startsWith(Terminal.class.getName() + "$");
+    }
+
+    /**
+     * Formats the topmost frames of the stack, omitting the frames of the Terminal and of waiting
+     * for it.
+     */
+    private static String formatStack(String title, StackTraceElement[] stack) {
+        int start = 0;
+        while (start < stack.length && (isTerminalFrame(stack[start])
+                || stack[start].getClassName().startsWith("java.util.concurrent.")
+                || stack[start].getClassName().startsWith("jdk.internal."))) {
+            start++;
+        }
+        StringBuilder text = new StringBuilder(title);
+        for (int i = start; i < Math.min(stack.length, start + STACK_DEPTH); i++) {
+            text.append("\n>>>     at ").append(stack[i]);
+        }
+        if (stack.length > start + STACK_DEPTH) {
+            text.append("\n>>>     ...");
+        }
+        return text.toString();
+    }
+
+    private static boolean assertString(String message, boolean prefix, boolean randomOrder, String... expected) {
+        if (randomOrder) {
+            // matched Strings are swapped to the front, the array of the caller must not change
+            expected = expected.clone();
+        }
+        boolean result = true;
+        for (int i = 0; i < expected.length; i++) {
+            String out = nextOutput(message);
+            if (out == null) {
+                return false;
+            }
+            int pos = -1, max = randomOrder ? expected.length : i + 1;
+            for (int j = i; j < max; j++) {
+                if (prefix ? out.startsWith(expected[j]) : out.equals(expected[j])) {
+                    pos = j;
+                    if (i != j) {
+                        String puffer = expected[i];
+                        expected[i] = expected[j];
+                        expected[j] = puffer;
+                    }
+                }
+            }
+            if (pos == -1) {
+                reportError(message, expected[i], false);
+                result = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * This policy determines what will be print through {@code System.out}. Parameters must be
+     * element of {@code Terminal.{PRINT_NONE, PRINT_IN_OUT, PRINT_FAILURES, PRINT_ALL}}. For
+     * details see the documentation of the constants. The policy applies to the test sessions of
+     * the current thread.
+     * <p>
+     * Default value: {@code PRINT_ALL}
+     *
+     * @param policy the printPolicy to be set
+     * @see #PRINT_NONE
+     */
+    public static void setPrintPolicy(int policy) {
+        if (policy < 0 || policy > 3) {
+            throw new IllegalArgumentException("Illegal printPolicy value.");
+        }
+        session().printPolicy = policy;
+    }
+
+    /**
+     * This policy determines whether the test will be canceled after failures. For canceling, the
+     * testing method will throw a {@code Terminal.CancelException}.
+     * <p>
+     * It is considered a difference between usual failures (meaning that expected and received
+     * <i>value</i> of output differs; "FAILURE" message) and mismatches (meaning that expected and
+     * received <i>order</i> of input/output differs; "MISMATCH" message). So the
+     * {@code CANCEL_AT_MISMATCHES} policy will cancel tests at mismatches, but not at usual
+     * failures. The {@code CANCEL_ASSERT} policy cancels like {@code CANCEL_ALWAYS}, but throws an
+     * {@code AssertionError} instead, so that test frameworks report the failure message. The policy
+     * applies to the test sessions of the current thread.
+     * <p>
+     * Default value: {@code CANCEL_NEVER}
+     *
+     * @param policy whether the test will be canceled at failures
+     * @see #CANCEL_NEVER
+     */
+    public static void setCancelPolicy(int policy) {
+        if (policy < 6 || policy > 9) {
+            throw new IllegalArgumentException("Illegal cancelPolicy value.");
+        }
+        session().cancelPolicy = policy;
+    }
+
+    /**
+     * This method determines mainly, how long the test will wait for responses of the tested
+     * program. The default value should work well for most purposes. Increase the value if
+     * expecting very time-expensive calculations, decrease the value for making the test fail more
+     * quickly (and so needing less time).
+     * <p>
+     * More specific, the method additionally determines that vice versa the tested program will
+     * wait the double amount of time for input or acceptance of output (which value is generally of
+     * less importance). The value applies to the test sessions of the current thread.
+     * <p>
+     * Default value: {@code 100}
+     *
+     * @param millis the number of milliseconds the test will wait for responses
+     */
+    public static void setTimeOut(long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("TimeOut value must be positive.");
+        }
+        session().timeOut = millis;
+    }
+
+    /**
+     * Determines whether {@code System.out} and {@code System.in} are intercepted, so that programs
+     * using them directly can be tested. If enabled, {@code System.out} and {@code System.in} are
+     * replaced by streams that pass each line printed by the tested program to the test like
+     * {@code printLine()}, and provide the input of the test like {@code readLine()}. Routing is
+     * done per thread, so concurrent test sessions do not mix, and all threads that do not belong
+     * to a tested program use the original streams. If disabled, the original streams are
+     * restored.
+     * <p>
+     * Default value: {@code false}
+     *
+     * @param enabled whether the console is intercepted
+     */
+    public static synchronized void setConsoleInterception(boolean enabled) {
+        if (enabled && console == null) {
+            console = System.out;
+            consoleIn = System.in;
+            System.setOut(new RoutingPrintStream(console));
+            System.setIn(new RoutingInputStream());
+        } else if (!enabled && console != null) {
+            System.out.flush();
+            System.setOut(console);
+            System.setIn(consoleIn);
+            console = null;
+            consoleIn = null;
+        }
+    }
+
+    /**
+     * Starts recording the input and output of the program, when not testing. Every line read by
+     * {@code readLine()} and printed by a print method is appended with its time to a compact binary
+     * log. The log is written by a background thread, fed through a bounded buffer, so the program
+     * does not wait for writing the log. Only if the buffer is full, because the program prints
+     * faster than the log is written, the program waits until there is space again, so no line is
+     * lost. If writing the log fails (e.g. because the disk is full), recording stops and the program
+     * continues without it. A recording can be replayed as test by
+     * {@code replay(Path log, Runnable main)}.
+     * <p>
+     * Recording can also be started without changing the program, by setting the system property
+     * {@code terminal.record} to the path of the log. The recording is completed when the JVM
+     * exits or by {@code stopRecording()}. A previous recording is stopped.
+     *
+     * @param log the path of the log, which is created or appended to
+     * @see #replay(Path, Runnable)
+     */
+    public static synchronized void startRecording(Path log) {
+        stopRecording();
+        DataOutputStream out;
+        try {
+            boolean isNew = !Files.exists(log) || Files.size(log) == 0;
+            out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(log, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+            if (isNew) {
+                out.writeInt(RECORD_MAGIC);
+            }
+            writeVarLong(out, RECORD_START);
+            writeVarLong(out, System.currentTimeMillis());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        BlockingQueue<Record> queue = new ArrayBlockingQueue<>(RECORD_CAPACITY);
+        long start = System.nanoTime();
+        recordThread = new Thread(() -> {
+            long last = start;
+            List<Record> records = new ArrayList<>();
+            try (DataOutputStream data = out) {
+                while (true) {
+                    records.add(queue.take());
+                    queue.drainTo(records);
+                    for (Record record : records) {
+                        if (record == END_OF_RECORDING) {
+                            return;
+                        }
+                        byte[] text = record.text.getBytes(StandardCharsets.UTF_8);
+                        writeVarLong(data, record.type);
+                        writeVarLong(data, Math.max(0, record.nanos - last) / 1000);
+                        writeVarLong(data, text.length);
+                        data.write(text);
+                        last = record.nanos;
+                    }
+                    records.clear();
+                    data.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // recording is not essential for the program: stop recording and release waiting
+                // threads of the program
+                if (recordQueue == queue) {
+                    recordQueue = null;
+                }
+                queue.clear();
+                e.printStackTrace();
+            }
+        }, "record thread");
+        recordThread.setDaemon(true);
+        recordQueue = queue;
+        recordThread.start();
+        if (!isRecordHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(Terminal::stopRecording, "record shutdown"));
+            isRecordHookAdded = true;
+        }
+    }
+
+    /**
+     * Stops recording the input and output of the program, after writing all recorded lines. Waits
+     * at most 10 seconds for writing the log.
+     *
+     * @see #startRecording(Path)
+     */
+    public static synchronized void stopRecording() {
+        if (recordThread == null) {
+            return;
+        }
+        BlockingQueue<Record> queue = recordQueue;
+        try {
+            // the record thread is gone if writing the log failed
+            if (queue != null && recordThread.isAlive()
+                    && queue.offer(END_OF_RECORDING, RECORD_STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                recordThread.join(RECORD_STOP_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            // Should never happen at normal use
+            e.printStackTrace();
+        }
+        recordQueue = null;
+        recordThread = null;
+    }
+
+    private static void record(int type, String text) {
+        BlockingQueue<Record> queue = recordQueue;
+        if (queue != null) {
+            try {
+                // waits if the buffer is full, as a lost line would break the replay
+                queue.put(new Record(type, text));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Replays a log recorded by {@code startRecording} as test. For every recorded run of the
+     * program, a test session is started, each recorded input is passed by {@code nextInput} and
+     * each recorded output is compared by {@code assertOutput}. Outputs that take considerably
+     * longer than recorded (twice the recorded time plus one millisecond) are reported as timing
+     * differences, printed like input and output.
+     * <p>
+     * Example:
+     *
+     * <pre>
+     * Terminal.replay(Paths.get("production.log"), () -&gt; StudyPortal.main(new String[0]));
+     * </pre>
+     *
+     * @param log the path of the recorded log
+     * @param main {@code Runnable}, invoking the method to be tested
+     * @return true, if all outputs were equal to the recorded outputs
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     * @see #startRecording(Path)
+     */
+    public static boolean replay(Path log, Runnable main) {
+        return runCounted(() -> {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(log)))) {
+                if (in.readInt() != RECORD_MAGIC) {
+                    throw new IllegalArgumentException("Not a Terminal recording: " + log);
+                }
+                long recorded = 0, replayed = 0;
+                while (true) {
+                    int type;
+                    try {
+                        type = (int) readVarLong(in);
+                    } catch (EOFException e) {
+                        return;
+                    }
+                    if (type == RECORD_START) {
+                        readVarLong(in);
+                        initTestSession(main);
+                        // outputs before the first input are timed from the start, like when recorded
+                        recorded = 0;
+                        replayed = System.nanoTime();
+                        continue;
+                    }
+                    long micros = readVarLong(in);
+                    byte[] text = new byte[(int) readVarLong(in)];
+                    in.readFully(text);
+                    String line = new String(text, StandardCharsets.UTF_8);
+                    if (type == RECORD_INPUT) {
+                        nextInput(line);
+                        recorded = 0;
+                        replayed = System.nanoTime();
+                        continue;
+                    }
+                    recorded += micros * 1000;
+                    boolean equal = assertOutput(line);
+                    long elapsed = System.nanoTime() - replayed;
+                    if (equal && elapsed > 2 * recorded + TIMING_TOLERANCE && (session().printPolicy & 1) != 0) {
+                        report(Event.Kind.TIMING, String.format("output \"%s\" after %.3f ms, recorded %.3f ms", line,
+                                elapsed / 1e6, recorded / 1e6));
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Activates sampling the stack of the tested program, for finding where it spends its time.
+     * While a test session of the current thread is running, the stack of the tested program is
+     * sampled in the given interval. The samples are aggregated for each input command and printed
+     * in the collapsed stack format ({@code command;frame;...;frame count}), which can be converted
+     * to flame graphs. Samples are only taken while the tested program is running, not while it
+     * waits for input or for its output to be accepted.
+     * <p>
+     * The profiler applies to test sessions started afterwards. {@code null} deactivates it.
+     *
+     * @param out the stream the samples are printed to, or {@code null}
+     * @param millis the sampling interval in milliseconds
+     */
+    public static void setProfiler(PrintStream out, long millis) {
+        if (millis < 1) {
+            throw new IllegalArgumentException("Sampling interval must be positive.");
+        }
+        Session session = session();
+        session.profileOut = out;
+        session.profileInterval = millis;
+    }
+
+    /**
+     * Determines whether the test sessions of the current thread use virtual time instead of the
+     * {@code timeOut}. With virtual time, waiting for the tested program does not fail after a fixed
+     * number of milliseconds, but as soon as no progress is possible: if the threads of the tested
+     * program are terminated, waiting for something else than the test, parked without any running
+     * thread that could wake them, or blocked on monitors of such threads (e.g. deadlocked). Vice versa, the tested program waits until the test is
+     * waiting for something else or terminated. So fast machines fail fast and slow machines do not
+     * fail spuriously.
+     * <p>
+     * Note that a tested program that never stops computing (e.g. an infinite loop) blocks the test
+     * in this mode. The threads of the tested program are daemon threads in this mode.
+     * <p>
+     * Default value: {@code false}
+     *
+     * @param enabled whether virtual time is used
+     * @see #setTimeOut(long)
+     */
+    public static void setVirtualTime(boolean enabled) {
+        session().virtualTime = enabled;
+    }
+
+    /**
+     * Sets the directory where {@code runCachedTest} stores the tests that passed. The directory is
+     * created if necessary. Only the most recently used entries are kept.
+     * <p>
+     * Default value: {@code .terminal-cache} in the working directory
+     *
+     * @param directory the cache directory
+     * @see #runCachedTest(String, Runnable, Class...)
+     */
+    public static void setCacheDirectory(Path directory) {
+        if (directory == null) {
+            throw new IllegalArgumentException("Cache directory must not be null.");
+        }
+        cacheDirectory = directory;
+    }
+
+    /**
+     * Sets the reporter that receives the events of the test sessions, instead of printing them
+     * through {@code System.out}. The events are passed through a bounded queue to a background
+     * thread, so the reporter does not slow down the tested program. A previous reporter will be
+     * closed after receiving all of its pending events. {@code null} restores printing through
+     * {@code System.out}.
+     * <p>
+     * The reporter should be set or removed while no test session is running. The last reporter
+     * must be removed by {@code setReporter(null)} to complete its report.
+     * <p>
+     * Example:
+     *
+     * <pre>
+     * Terminal.setReporter(new Terminal.JUnitXmlReporter(new PrintStream("TEST-terminal.xml"), "terminal"));
+     * </pre>
+     *
+     * @param reporter the reporter, or {@code null}
+     * @see Reporter
+     */
+    public static synchronized void setReporter(Reporter reporter) {
+        if (reportThread != null) {
+            try {
+                reportQueue.put(END_OF_REPORT);
+                reportThread.join();
+            } catch (InterruptedException e) {
+                // Should never happen at normal use
+                e.printStackTrace();
+            }
+            reportQueue = null;
+            reportThread = null;
+        }
+        if (reporter != null) {
+            BlockingQueue<Event> queue = new ArrayBlockingQueue<>(REPORT_CAPACITY);
+            reportThread = new Thread(() -> {
+                try {
+                    for (Event event = queue.take(); event != END_OF_REPORT; event = queue.take()) {
+                        reporter.report(event);
+                    }
+                } catch (InterruptedException e) {
+                } finally {
+                    reporter.close();
+                }
+            }, "report thread");
+            reportThread.setDaemon(true);
+            reportThread.start();
+            reportQueue = queue;
+        }
+    }
+
+    /**
+     * Starts a test session. A previous test of the current thread that is still running will be
+     * terminated. Test sessions of other threads are not affected. For
+     * specifying what to test, a {@code Runnable} is required as parameter, that invokes the
+     * (probably main-) method to be tested.
+     * <p>
+     * Example:
+     *
+     * <pre>
+     * Terminal.initTestSession(() -&gt; TestedClass.main(new String[0]));
+     * </pre>
+     *
+     * @param main {@code Runnable}, invoking the method to be tested
+     */
+    public static void initTestSession(Runnable main) {
+        Session session = session();
+        isTesting = true;
+        session.isTesting = true;
+        enforceExit();
+        session.barrier = new CyclicBarrier(2);
+        session.pendingOutput.clear();
+        session.id = sessionCount.incrementAndGet();
+        session.driver = Thread.currentThread();
+        session.isFinished = false;
+        session.group = new ThreadGroup("session " + session.id);
+        if (reportQueue != null) {
+            report(Event.Kind.START, "session " + session.id);
+        }
+        session.testThread = new Thread(session.group, () -> {
+            PROGRAM.set(session);
+            SESSION.set(session);
+            activeSessions.incrementAndGet();
+            try {
+                runProgram(session, main);
+            } finally {
+                activeSessions.decrementAndGet();
+            }
+        }, "test thread");
+        session.testThread.setDaemon(session.virtualTime);
+        session.testThread.start();
+        if (session.profileOut != null) {
+            Thread profiler = new Thread(() -> profile(session, session.testThread), "profiler thread");
+            profiler.setDaemon(true);
+            profiler.start();
+        }
+    }
+
+    /**
+     * Samples the stack of the tested program until it terminates, and prints the samples of each
+     * input command as collapsed stacks. Samples while the program waits for the Terminal are
+     * skipped.
+     */
+    private static void profile(Session session, Thread program) {
+        PrintStream out = session.profileOut;
+        long interval = session.profileInterval;
+        Map<String, Integer> samples = new HashMap<>();
+        String command = session.command;
+        try {
+            while (program.isAlive()) {
+                Thread.sleep(interval);
+                if (!command.equals(session.command)) {
+                    printProfile(out, command, samples);
+                    command = session.command;
+                }
+                if (session.programWaits.containsKey(program) || program.getState() != Thread.State.RUNNABLE) {
+                    continue;
+                }
+                // the program may have started waiting for the Terminal since the check above
+                StackTraceElement[] stack = program.getStackTrace();
+                int top = 0;
+                while (top < stack.length && (stack[top].getClassName().startsWith("java.")
+                        || stack[top].getClassName().startsWith("jdk.") || stack[top].getClassName().startsWith("sun."))) {
+                    top++;
+                }
+                if (top == stack.length || isTerminalFrame(stack[top])) {
+                    continue;
+                }
+                // the frames below the main method of the tested program are the same for all samples
+                int root = stack.length;
+                while (root > 0 && !(stack[root - 1].getClassName().equals(Terminal.class.getName())
+                        && stack[root - 1].getMethodName().equals("runProgram"))) {
+                    root--;
+                }
+                StringBuilder key = new StringBuilder();
+                for (int i = (root == 0 ? stack.length : root - 1) - 1; i >= 0; i--) {
+                    key.append(';').append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+                }
+                samples.merge(key.toString(), 1, Integer::sum);
+            }
+        } catch (InterruptedException e) {
+            // Should never happen at normal use
+            e.printStackTrace();
+        }
+        printProfile(out, command, samples);
+    }
+
+    private static void printProfile(PrintStream out, String command, Map<String, Integer> samples) {
+        // the command is the root frame, so the flame graph is split by commands
+        String root = command.isEmpty() ? "(start)" : command.replace(';', ',').replace(' ', '_');
+        synchronized (out) {
+            for (Map.Entry<String, Integer> sample : samples.entrySet()) {
+                out.println(root + sample.getKey() + " " + sample.getValue());
+            }
+            out.flush();
+        }
+        samples.clear();
+    }
+
+    /**
+     * Waits by repeated attempts until the attempt succeeds or the counterpart is stuck. In real
+     * time mode, only a single attempt is made with the given timeout. In virtual time mode, the
+     * counterpart is considered stuck if {@code idle} holds at two consecutive attempts without any
+     * progress of the session in between.
+     */
+    private static <T> T awaitProgress(Session session, long timeOut, Attempt<T> attempt, BooleanSupplier idle)
+            throws InterruptedException {
+        if (!session.virtualTime) {
+            return attempt.attempt(timeOut);
+        }
+        long progress = -1;
+        while (true) {
+            T result = attempt.attempt(SLICE);
+            if (result != null) {
+                session.progress.incrementAndGet();
+                return result;
+            }
+            if (!idle.getAsBoolean()) {
+                progress = -1;
+            } else if (progress == session.progress.get()) {
+                return null;
+            } else {
+                progress = session.progress.get();
+            }
+        }
+    }
+
+    /**
+     * Returns whether the tested program can not make progress towards what the test waits for.
+     */
+    private static boolean isProgramIdle(Session session, int waitingFor) {
+        Thread[] threads = new Thread[session.group.activeCount() + 1];
+        int count = session.group.enumerate(threads);
+        Map<Long, Thread> program = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            program.put(threads[i].getId(), threads[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            if (!isThreadIdle(session, threads[i], waitingFor, program, new HashSet<>())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether a thread of the tested program can not make progress. A blocked thread can not
+     * make progress if the monitor it waits for is owned by an idle thread of the program, or by a
+     * thread that is blocked in turn by the thread itself (a deadlock).
+     */
+    private static boolean isThreadIdle(Session session, Thread thread, int waitingFor, Map<Long, Thread> program,
+            Set<Thread> blocked) {
+        Thread.State state = thread.getState();
+        Integer waiting = session.programWaits.get(thread);
+        if (waiting != null) {
+            return waiting != waitingFor && state != Thread.State.RUNNABLE;
+        }
+        if (state == Thread.State.BLOCKED) {
+            if (!blocked.add(thread)) {
+                return true;
+            }
+            ThreadInfo info = ManagementFactory.getThreadMXBean().getThreadInfo(thread.getId());
+            Thread owner = info == null ? null : program.get(info.getLockOwnerId());
+            return owner != null && isThreadIdle(session, owner, waitingFor, program, blocked);
+        }
+        return state == Thread.State.WAITING || state == Thread.State.TERMINATED;
+    }
+
+    /**
+     * Returns whether the test can not make progress towards what the tested program waits for.
+     * Like the doubled timeout in real time mode, the tested program gives the test the chance to
+     * report the failure first: the test must be waiting for something else for the second time
+     * since the first observation, which is stored in {@code firstWait}. After the test finished,
+     * the test can not make progress at all.
+     */
+    private static boolean isDriverIdle(Session session, int waitingFor, long[] firstWait) {
+        Thread driver = session.driver;
+        int waiting = session.driverWait;
+        if (!driver.isAlive() || session.isFinished) {
+            return true;
+        }
+        if (waiting == WAIT_NONE || waiting == waitingFor || driver.getState() == Thread.State.RUNNABLE) {
+            return false;
+        }
+        long count = session.driverWaitCount;
+        if (firstWait[0] < 0) {
+            firstWait[0] = count;
+        }
+        return count > firstWait[0];
+    }
+
+    private static void setDriverWait(Session session, int waiting) {
+        if (waiting != WAIT_NONE) {
+            session.driverWaitCount++;
+        }
+        session.driverWait = waiting;
+    }
+
+    /**
+     * Reports output of a batch that has not been requested by the test. Without batches, the
+     * tested program would still be waiting to print this output.
+     */
+    private static void checkPendingOutput(Session session) {
+        if (!session.pendingOutput.isEmpty()) {
+            session.pendingOutput.clear();
+            reportError("unexpected output.", true);
+        }
+    }
+
+    private static Throwable nextExit(Session session) throws InterruptedException {
+        checkPendingOutput(session);
+        setDriverWait(session, WAIT_EXIT);
+        try {
+            return awaitProgress(session, session.timeOut,
+                    millis -> session.exitQueue.poll(millis, TimeUnit.MILLISECONDS),
+                    () -> isProgramIdle(session, WAIT_EXIT));
+        } finally {
+            setDriverWait(session, WAIT_NONE);
+        }
+    }
+
+    private static void runProgram(Session session, Runnable main) {
+        try {
+            main.run();
+        } catch (ExitException e) {
+            if (!e.interrupted) {
+                session.programFailure = e.getMessage() + formatStack("\n>>> Program at:", e.getStackTrace());
+                session.failures.incrementAndGet();
+            }
+            if (!e.interrupted && session.printPolicy > 1) {
+                report(Event.Kind.MISMATCH, session.programFailure);
+            }
+        } catch (Throwable t) {
+            try {
+                printInOut(Event.Kind.EXCEPTION, t);
+                session.exitQueue.offer(t, session.timeOut, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+            }
+            return;
+        }
+        try {
+            session.exitQueue.offer(new ExitException(), session.timeOut, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    /**
+     * Utility method for running a test that should be canceled. Using this method prevents an
+     * uncaught exception and will cancel only the single test instead of the entire test routine.
+     * <p>
+     * While running the testing method, the cancelPolicy will be changed to CANCEL_ALWAYS, and
+     * reset to the preceding value afterwards.
+     * <p>
+     * Example:
+     *
+     * <pre>
+     * Terminal.runCancelingTest(() -&gt; testMethod());
+     * </pre>
+     *
+     * @param test the test method to be run
+     */
+    public static void runCancelingTest(Runnable test) {
+        runCancelingTest(test, true);
+    }
+
+    /**
+     * Utility method for running a test that should be canceled. Using this method prevents an
+     * uncaught exception and will cancel only the single test instead of the entire test routine.
+     * <p>
+     * While running the testing method, the cancelPolicy will (depending on the cancelAtFailure
+     * parameter) be changed to CANCEL_ALWAYS or CANCEL_AT_MISMATCH, and reset to the preceding
+     * value afterwards.
+     *
+     * @param test the test method to be run
+     * @param cancelAtFailure if false, cancels only at mismatches (default: true)
+     * @see #runCancelingTest(Runnable)
+     */
+    public static void runCancelingTest(Runnable test, boolean cancelAtFailure) {
+        runCancelingTest(test, null, cancelAtFailure);
+    }
+
+    /**
+     * Utility method for running a test that should be canceled. Using this method prevents an
+     * uncaught exception and will cancel only the single test instead of the entire test routine.
+     * <p>
+     * While running the testing method, the cancelPolicy will be changed to CANCEL_ALWAYS, and
+     * reset to the preceding value afterwards. If the test cancels, the {@code message} will be
+     * printed.
+     *
+     * @param test the test method to be run
+     * @param message printed if the test cancels
+     * @see #runCancelingTest(Runnable)
+     */
+    public static void runCancelingTest(Runnable test, String message) {
+        runCancelingTest(test, message, true);
+    }
+
+    /**
+     * Utility method for running a test that should be canceled. Using this method prevents an
+     * uncaught exception and will cancel only the single test instead of the entire test routine.
+     * <p>
+     * While running the testing method, the cancelPolicy will (depending on the cancelAtFailure
+     * parameter) be changed to CANCEL_ALWAYS or CANCEL_AT_MISMATCH, and reset to the preceding
+     * value afterwards. If the test cancels, the {@code message} will be printed.
+     *
+     * @param test the test method to be run
+     * @param message printed if the test cancels
+     * @param cancelAtFailure if false, cancels only at mismatches (default: true)
+     * @see #runCancelingTest(Runnable)
+     */
+    public static void runCancelingTest(Runnable test, String message, boolean cancelAtFailure) {
+        int oldPolicy = session().cancelPolicy;
+        setCancelPolicy(cancelAtFailure ? CANCEL_ALWAYS : CANCEL_AT_MISMATCH);
+        try {
+            test.run();
+        } catch (CancelException e) {
+            if (message != null) {
+                console().println(message);
+            }
+        } finally {
+            setCancelPolicy(oldPolicy);
+        }
+    }
+
+    /**
+     * Runs a test unless it already passed in a previous run with unchanged inputs. The inputs are
+     * identified by a hash of the {@code scenario} (e.g. a name or transcript of the test), the
+     * bytecode of the class that defines the test and the bytecode of all classes in the directories
+     * or jar files the {@code programClasses} were loaded from (including helper, anonymous and local
+     * classes). So the test is run again whenever the tested program or the test is changed. Classes
+     * the program uses from other directories or jar files (e.g. libraries) only invalidate the cache
+     * if one of them is passed as well.
+     * <p>
+     * The test passes if it does not cause any failure or mismatch. Only passes are cached, failed
+     * tests are always run again to report their failures. As the tested program may still fail
+     * after the test method returned (e.g. by an unexpected {@code readLine()} if the test did not end
+     * with {@code testExit}), the test waits for the program to terminate or fail, and a pass is only
+     * cached if the program terminated. The cache is stored in the directory specified by
+     * {@code setCacheDirectory(Path directory)}.
+     * <p>
+     * Example:
+     *
+     * <pre>
+     * Terminal.runCachedTest("basic test", () -&gt; basicTest(), StudyPortal.class, Student.class);
+     * </pre>
+     *
+     * @param scenario identifies the test, should change if the test changes
+     * @param test the test method to be run
+     * @param programClasses the classes of the tested program
+     * @return true, if the test passed (now or in a previous run)
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     */
+    public static boolean runCachedTest(String scenario, Runnable test, Class<?>... programClasses) {
+        Path entry = cacheDirectory.resolve(cacheKey(scenario, test.getClass(), programClasses));
+        try {
+            if (Files.exists(entry)) {
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                return true;
+            }
+            Session session = session();
+            int failures = session.failures.get();
+            test.run();
+            // mismatches of the tested program are counted when it fails, which may be after the test
+            boolean terminated = session.awaitProgram();
+            if (session.failures.get() != failures) {
+                return false;
+            }
+            if (!terminated) {
+                return true;
+            }
+            Files.createDirectories(entry.getParent());
+            Files.write(entry, new byte[0]);
+            evictCache();
+            return true;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Runs an endurance test that detects memory leaks of the tested program. A test session is
+     * started and the {@code command} (e.g. a {@code testOutput} call) is invoked the given number
+     * of times, while input and output are not printed. The heap usage after garbage collection is
+     * sampled 20 times in regular intervals. If the heap grows in at least three quarters of the
+     * intervals and by at least 1 MiB in total, a memory leak is reported as failure, including the
+     * allocation rate of the tested program and the classes whose instances increased the most.
+     * <p>
+     * The test stops early at the first failure of the {@code command}. The test session uses
+     * virtual time (see {@code setVirtualTime}), so the tested program does not time out while the
+     * heap is sampled.
+     * <p>
+     * Example:
+     *
+     * <pre>
+     * Terminal.soakTest(() -&gt; StudyPortal.main(new String[0]), 1000000,
+     *         () -&gt; testOutput("add-lecture la", "Ok"));
+     * </pre>
+     *
+     * @param main {@code Runnable}, invoking the method to be tested
+     * @param iterations how often the command is invoked
+     * @param command the command to be repeated
+     * @return true, if no failure and no memory leak occurred
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     */
+    public static boolean soakTest(Runnable main, long iterations, Runnable command) {
+        if (iterations < SOAK_SAMPLES) {
+            throw new IllegalArgumentException("At least " + SOAK_SAMPLES + " iterations required.");
+        }
+        Session session = session();
+        int oldPolicy = session.printPolicy;
+        int failures = session.failures.get();
+        long interval = iterations / SOAK_SAMPLES;
+        long[] heap = new long[SOAK_SAMPLES + 1];
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        boolean allocation = threads instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+        long allocated = 0;
+        Map<String, long[]> histogram = null;
+        boolean oldVirtualTime = session.virtualTime;
+        session.printPolicy = oldPolicy & ~PRINT_IN_OUT;
+        // garbage collection and histograms may take longer than the timeOut
+        session.virtualTime = true;
+        try {
+            initTestSession(main);
+            for (int sample = 0; sample <= SOAK_SAMPLES; sample++) {
+                if (sample > 0) {
+                    for (long i = 0; i < interval; i++) {
+                        command.run();
+                        if (session.failures.get() != failures) {
+                            return false;
+                        }
+                    }
+                }
+                System.gc();
+                heap[sample] = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+                if (sample == 0) {
+                    histogram = classHistogram();
+                    if (allocation) {
+                        allocated = ((com.sun.management.ThreadMXBean) threads)
+                                .getThreadAllocatedBytes(session.testThread.getId());
+                    }
+                }
+            }
+            if (allocation) {
+                allocated = ((com.sun.management.ThreadMXBean) threads)
+                        .getThreadAllocatedBytes(session.testThread.getId()) - allocated;
+            }
+        } finally {
+            session.printPolicy = oldPolicy;
+            session.virtualTime = oldVirtualTime;
+        }
+
+        int increases = 0;
+        for (int sample = 1; sample <= SOAK_SAMPLES; sample++) {
+            increases += heap[sample] > heap[sample - 1] ? 1 : 0;
+        }
+        long growth = heap[SOAK_SAMPLES] - heap[0];
+        if (increases * 4 < SOAK_SAMPLES * 3 || growth < LEAK_THRESHOLD) {
+            return true;
+        }
+        StringBuilder message = new StringBuilder("memory leak: heap grew by ").append(growth >> 10)
+                .append(" KiB over ").append(interval * SOAK_SAMPLES).append(" iterations (")
+                .append(growth / (interval * SOAK_SAMPLES)).append(" bytes per iteration)");
+        if (allocation && allocated >= 0) {
+            message.append(", the program allocated ").append(allocated / (interval * SOAK_SAMPLES))
+                    .append(" bytes per iteration");
+        }
+        Map<String, long[]> after = classHistogram();
+        if (histogram != null && after != null) {
+            List<Map.Entry<String, long[]>> diff = new ArrayList<>();
+            for (Map.Entry<String, long[]> entry : after.entrySet()) {
+                long[] before = histogram.getOrDefault(entry.getKey(), new long[2]);
+                diff.add(new AbstractMap.SimpleEntry<>(entry.getKey(),
+                        new long[] { entry.getValue()[0] - before[0], entry.getValue()[1] - before[1] }));
+            }
+            diff.sort(Comparator.comparingLong((Map.Entry<String, long[]> entry) -> entry.getValue()[1]).reversed());
+            message.append("\n>>> Largest growth (instances, bytes, class):");
+            for (Map.Entry<String, long[]> entry : diff.subList(0, Math.min(10, diff.size()))) {
+                message.append(String.format("%n>>> %+10d %+12d  %s", entry.getValue()[0], entry.getValue()[1],
+                        entry.getKey()));
+            }
+        }
+        reportError(message.toString(), false);
+        return false;
+    }
+
+    /**
+     * Returns the number of instances and bytes of each class on the heap after garbage collection,
+     * or {@code null} if the histogram is not supported by the JVM.
+     */
+    private static Map<String, long[]> classHistogram() {
+        String histogram;
+        try {
+            histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                    new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                    new Object[] { new String[0] }, new String[] { String[].class.getName() });
+        } catch (JMException | RuntimeException e) {
+            return null;
+        }
+        // lines like "   1:        123       4567  java.lang.String (java.base@17)"
+        Map<String, long[]> classes = new TreeMap<>();
+        for (String line : histogram.split("\n")) {
+            String[] columns = line.trim().split("\\s+");
+            if (columns.length >= 4 && columns[0].endsWith(":")) {
                 try {
-                    printInOut("An exception occured: " + t.toString());
-                    exitQueue.offer(t, timeOut, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException e) {
+                    classes.put(columns[3], new long[] { Long.parseLong(columns[1]), Long.parseLong(columns[2]) });
+                } catch (NumberFormatException e) {
+                    // not a line of the histogram
                 }
-                return;
-            }
-            try {
-                exitQueue.offer(new ExitException(), timeOut, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
             }
-        }, "test thread");
-        testThread.start();
+        }
+        return classes;
     }
 
     /**
-     * Utility method for running a test that should be canceled. Using this method prevents an
-     * uncaught exception and will cancel only the single test instead of the entire test routine.
+     * Runs the test and returns whether it passed without any failure or mismatch. A
+     * {@code CancelException} is passed to the caller, e.g. to {@code runCancelingTest}.
+     */
+    private static boolean runCounted(Runnable test) {
+        Session session = session();
+        int failures = session.failures.get();
+        test.run();
+        return session.failures.get() == failures;
+    }
+
+    /**
+     * Runs the test methods of a suite in separate JVMs, so that tested programs which can not share
+     * a JVM (e.g. because of {@code System.exit} or global state) are tested using all processors.
+     * The test methods are distributed among the given number of child JVMs, balanced by their
+     * runtimes in previous runs. The results are streamed back and merged: each test method is
+     * reported like a test session named {@code suite#method}, including its input, output,
+     * failures and mismatches. Other output of the child JVMs (e.g. stack traces) is passed to
+     * {@code System.err}, so it does not mix with the report.
      * <p>
-     * While running the testing method, the cancelPolicy will be changed to CANCEL_ALWAYS, and
-     * reset to the preceding value afterwards.
+     * Each child JVM uses the printPolicy, cancelPolicy and timeOut of the current thread. If a
+     * child JVM crashes or does not finish within 10 minutes, each of its unfinished test methods is
+     * retried in a JVM of its own. The runtimes are stored in the directory specified by
+     * {@code setCacheDirectory(Path directory)}.
      * <p>
      * Example:
      *
      * <pre>
-     * Terminal.runCancelingTest(() -&gt; testMethod());
+     * Terminal.runSharded(4, StudyPortalTest.class, "basicTest", "errorTest", "listTest");
      * </pre>
      *
-     * @param test the test method to be run
+     * @param shards the number of child JVMs
+     * @param suite the class declaring the test methods
+     * @param scenarios the names of the test methods, which must be public, static and without
+     *        parameters
+     * @return true, if all test methods passed
      */
-    public static void runCancelingTest(Runnable test) {
-        runCancelingTest(test, true);
+    public static boolean runSharded(int shards, Class<?> suite, String... scenarios) {
+        return runSharded(shards, SHARD_TIMEOUT, suite, scenarios);
     }
 
     /**
-     * Utility method for running a test that should be canceled. Using this method prevents an
-     * uncaught exception and will cancel only the single test instead of the entire test routine.
-     * <p>
-     * While running the testing method, the cancelPolicy will (depending on the cancelAtFailure
-     * parameter) be changed to CANCEL_ALWAYS or CANCEL_AT_MISMATCH, and reset to the preceding
-     * value afterwards.
+     * Runs the test methods of a suite in separate JVMs. Child JVMs that do not finish within the
+     * given time are considered hung.
      *
-     * @param test the test method to be run
-     * @param cancelAtFailure if false, cancels only at mismatches (default: true)
-     * @see #runCancelingTest(Runnable)
+     * @param shards the number of child JVMs
+     * @param millis the number of milliseconds a child JVM may run
+     * @param suite the class declaring the test methods
+     * @param scenarios the names of the test methods, which must be public, static and without
+     *        parameters
+     * @return true, if all test methods passed
+     * @see #runSharded(int, Class, String...)
      */
-    public static void runCancelingTest(Runnable test, boolean cancelAtFailure) {
-        runCancelingTest(test, null, cancelAtFailure);
+    public static boolean runSharded(int shards, long millis, Class<?> suite, String... scenarios) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Number of shards must be positive.");
+        }
+        if (millis < 1) {
+            throw new IllegalArgumentException("TimeOut value must be positive.");
+        }
+        Path timingFile = cacheDirectory.resolve(TIMINGS);
+        Properties timings = new Properties();
+        try {
+            if (Files.exists(timingFile)) {
+                try (Reader reader = Files.newBufferedReader(timingFile)) {
+                    timings.load(reader);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        // longest processing time first: assign each test to the shard with the least runtime
+        List<String> sorted = new ArrayList<>(Arrays.asList(scenarios));
+        sorted.sort(Comparator.comparing(
+                (String scenario) -> Long.parseLong(timings.getProperty(suite.getName() + "#" + scenario, "0")))
+                .reversed());
+        List<List<String>> groups = new ArrayList<>();
+        long[] loads = new long[Math.min(shards, scenarios.length)];
+        for (int i = 0; i < loads.length; i++) {
+            groups.add(new ArrayList<>());
+        }
+        for (String scenario : sorted) {
+            int min = 0;
+            for (int i = 1; i < loads.length; i++) {
+                min = loads[i] < loads[min] ? i : min;
+            }
+            groups.get(min).add(scenario);
+            loads[min] += 1 + Long.parseLong(timings.getProperty(suite.getName() + "#" + scenario, "0"));
+        }
+
+        Map<String, Boolean> results = new ConcurrentHashMap<>();
+        Map<String, List<Event>> events = new ConcurrentHashMap<>();
+        runShards(groups, millis, suite, results, events, timings);
+        List<List<String>> retries = new ArrayList<>();
+        for (String scenario : scenarios) {
+            if (!results.containsKey(scenario)) {
+                retries.add(Arrays.asList(scenario));
+            }
+        }
+        for (int i = 0; i < retries.size(); i += shards) {
+            runShards(retries.subList(i, Math.min(i + shards, retries.size())), millis, suite, results, events,
+                    timings);
+        }
+
+        boolean passed = true;
+        Session session = session();
+        for (String scenario : scenarios) {
+            int id = sessionCount.incrementAndGet();
+            if (reportQueue != null) {
+                report(Event.Kind.START, id, suite.getName() + "#" + scenario);
+            }
+            Boolean result = results.get(scenario);
+            boolean reported = false;
+            for (Event event : events.getOrDefault(scenario, Collections.emptyList())) {
+                report(event.kind, id, event.text);
+                reported |= event.kind == Event.Kind.FAILURE || event.kind == Event.Kind.MISMATCH;
+            }
+            if (result == null && session.printPolicy > 1) {
+                report(Event.Kind.FAILURE, id, "shard crashed or timed out: " + scenario);
+            } else if (result != null && !result && !reported && session.printPolicy > 1) {
+                report(Event.Kind.FAILURE, id, "test failed: " + scenario);
+            }
+            passed &= result != null && result;
+        }
+        try {
+            Files.createDirectories(cacheDirectory);
+            try (Writer writer = Files.newBufferedWriter(timingFile)) {
+                timings.store(writer, "runtimes of sharded Terminal tests in milliseconds");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return passed;
+    }
+
+    private static void runShards(List<List<String>> groups, long millis, Class<?> suite,
+            Map<String, Boolean> results, Map<String, List<Event>> events, Properties timings) {
+        Session session = session();
+        List<Process> processes = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        try {
+            for (List<String> group : groups) {
+                List<String> command = new ArrayList<>(Arrays.asList(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+                        System.getProperty("java.class.path"), Shard.class.getName(),
+                        Integer.toString(session.printPolicy), Integer.toString(session.cancelPolicy),
+                        Long.toString(session.timeOut), suite.getName()));
+                command.addAll(group);
+                Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+                Thread reader = new Thread(() -> {
+                    // the events of a test method precede its result
+                    List<Event> pending = new ArrayList<>();
+                    try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                        for (String line = in.readLine(); line != null; line = in.readLine()) {
+                            if (line.startsWith(EVENT_PREFIX)) {
+                                String[] event = line.substring(EVENT_PREFIX.length()).split("\t", 2);
+                                pending.add(new Event(Event.Kind.valueOf(event[0]), 0, Shard.unescape(event[1])));
+                            } else if (line.startsWith(RESULT_PREFIX)) {
+                                String[] result = line.substring(RESULT_PREFIX.length()).split("\t");
+                                events.put(result[0], new ArrayList<>(pending));
+                                pending.clear();
+                                results.put(result[0], Boolean.valueOf(result[1]));
+                                synchronized (timings) {
+                                    timings.setProperty(suite.getName() + "#" + result[0], result[2]);
+                                }
+                            } else {
+                                // other output of the child JVM must not mix with the reported events
+                                System.err.println(line);
+                            }
+                        }
+                    } catch (IOException e) {
+                        // the shard crashed, its missing results are retried
+                    }
+                }, "shard reader");
+                reader.start();
+                processes.add(process);
+                readers.add(reader);
+            }
+            long deadline = System.currentTimeMillis() + millis;
+            for (int i = 0; i < processes.size(); i++) {
+                long remaining = Math.max(1, deadline - System.currentTimeMillis());
+                if (!processes.get(i).waitFor(remaining, TimeUnit.MILLISECONDS)) {
+                    processes.get(i).destroyForcibly();
+                }
+                readers.get(i).join();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            // Should never happen at normal use
+            e.printStackTrace();
+        } finally {
+            for (Process process : processes) {
+                process.destroyForcibly();
+            }
+        }
+    }
+
+    private static String cacheKey(String scenario, Class<?> testClass, Class<?>... programClasses) {
+        MessageDigest digest = newDigest();
+        digest.update(scenario.getBytes(StandardCharsets.UTF_8));
+        String testName = testClass.getName();
+        int lambda = testName.indexOf("$$Lambda");
+        digestClass(digest, testName.substring(0, lambda < 0 ? testName.length() : lambda), testClass);
+        Set<Path> locations = new LinkedHashSet<>();
+        for (Class<?> c : programClasses) {
+            Path location = codeSource(c);
+            if (location == null) {
+                digestClass(digest, c);
+            } else if (locations.add(location)) {
+                digest.update(location.toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(codeSourceDigests.computeIfAbsent(location, Terminal::digestCodeSource));
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Should never happen, every Java platform supports SHA-256
+            throw new RuntimeException(e);
+        }
     }
 
     /**
-     * Utility method for running a test that should be canceled. Using this method prevents an
-     * uncaught exception and will cancel only the single test instead of the entire test routine.
-     * <p>
-     * While running the testing method, the cancelPolicy will be changed to CANCEL_ALWAYS, and
-     * reset to the preceding value afterwards. If the test cancels, the {@code message} will be
-     * printed.
-     *
-     * @param test the test method to be run
-     * @param message printed if the test cancels
-     * @see #runCancelingTest(Runnable)
+     * Returns the directory or jar file the class was loaded from, or {@code null} if it is unknown
+     * (e.g. for classes of the platform).
      */
-    public static void runCancelingTest(Runnable test, String message) {
-        runCancelingTest(test, message, true);
+    private static Path codeSource(Class<?> c) {
+        try {
+            CodeSource source = c.getProtectionDomain().getCodeSource();
+            if (source == null || source.getLocation() == null) {
+                return null;
+            }
+            Path location = Paths.get(source.getLocation().toURI());
+            return Files.isDirectory(location) || Files.isRegularFile(location) ? location : null;
+        } catch (URISyntaxException | RuntimeException e) {
+            return null;
+        }
     }
 
     /**
-     * Utility method for running a test that should be canceled. Using this method prevents an
-     * uncaught exception and will cancel only the single test instead of the entire test routine.
-     * <p>
-     * While running the testing method, the cancelPolicy will (depending on the cancelAtFailure
-     * parameter) be changed to CANCEL_ALWAYS or CANCEL_AT_MISMATCH, and reset to the preceding
-     * value afterwards. If the test cancels, the {@code message} will be printed.
-     *
-     * @param test the test method to be run
-     * @param message printed if the test cancels
-     * @param cancelAtFailure if false, cancels only at mismatches (default: true)
-     * @see #runCancelingTest(Runnable)
+     * Digests all class files of a directory (with their relative paths), or a jar file. The
+     * digests are kept for the lifetime of the JVM, as loaded classes do not change.
      */
-    public static void runCancelingTest(Runnable test, String message, boolean cancelAtFailure) {
-        int oldPolicy = cancelPolicy;
-        setCancelPolicy(cancelAtFailure ? CANCEL_ALWAYS : CANCEL_AT_MISMATCH);
+    private static byte[] digestCodeSource(Path location) {
+        MessageDigest digest = newDigest();
         try {
-            test.run();
-        } catch (CancelException e) {
-            if (message != null) {
-                System.out.println(message);
+            if (Files.isDirectory(location)) {
+                List<Path> classFiles = new ArrayList<>();
+                try (Stream<Path> files = Files.walk(location)) {
+                    files.filter(file -> file.getFileName().toString().endsWith(".class") && Files.isRegularFile(file))
+                            .forEach(classFiles::add);
+                }
+                Collections.sort(classFiles);
+                for (Path file : classFiles) {
+                    digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(file));
+                }
+            } else {
+                digest.update(Files.readAllBytes(location));
             }
-        } finally {
-            setCancelPolicy(oldPolicy);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return digest.digest();
+    }
+
+    private static void digestClass(MessageDigest digest, Class<?> c) {
+        digestClass(digest, c.getName(), c);
+        for (Class<?> nested : c.getDeclaredClasses()) {
+            digestClass(digest, nested);
+        }
+    }
+
+    private static void digestClass(MessageDigest digest, String name, Class<?> c) {
+        digest.update(name.getBytes(StandardCharsets.UTF_8));
+        ClassLoader loader = c.getClassLoader() == null ? ClassLoader.getSystemClassLoader() : c.getClassLoader();
+        try (InputStream in = loader.getResourceAsStream(name.replace('.', '/') + ".class")) {
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static synchronized void evictCache() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(cacheDirectory)) {
+            files.filter(file -> !file.getFileName().toString().equals(TIMINGS)).forEach(entries::add);
+        }
+        if (entries.size() <= CACHE_SIZE) {
+            return;
+        }
+        Map<Path, FileTime> times = new HashMap<>();
+        for (Path entry : entries) {
+            times.put(entry, Files.getLastModifiedTime(entry));
+        }
+        entries.sort(Comparator.comparing(times::get));
+        for (Path entry : entries.subList(0, entries.size() - CACHE_SIZE)) {
+            Files.deleteIfExists(entry);
         }
     }
 
@@ -391,16 +2435,23 @@ public class Terminal {
      *         policy requests a cancel for mismatches
      */
     public static void nextInput(String input) {
-        boolean success;
+        Session session = session();
+        checkPendingOutput(session);
+        Boolean success;
+        setDriverWait(session, WAIT_INPUT);
         try {
-            success = transferQueue.offer(input, timeOut, TimeUnit.MILLISECONDS);
+            success = awaitProgress(session, session.timeOut,
+                    millis -> session.transferQueue.offer(input, millis, TimeUnit.MILLISECONDS) ? Boolean.TRUE : null,
+                    () -> isProgramIdle(session, WAIT_INPUT));
         } catch (InterruptedException e) {
             // Should never happen at normal use
             e.printStackTrace();
             return;
+        } finally {
+            setDriverWait(session, WAIT_NONE);
         }
-        if (!success) {
-            reportError("expected to be waiting for next input.", true);
+        if (success == null) {
+            reportError("expected to be waiting for next input.", null, true, session.testThread);
         }
     }
 
@@ -419,22 +2470,41 @@ public class Terminal {
     }
 
     private static String nextOutput(String message) {
-        String out;
+        Session session = session();
+        if (!session.pendingOutput.isEmpty()) {
+            return session.pendingOutput.poll();
+        }
+        Object out;
+        setDriverWait(session, WAIT_OUTPUT);
         try {
-            barrier.await(timeOut, TimeUnit.MILLISECONDS);
-            out = transferQueue.poll(timeOut, TimeUnit.MILLISECONDS);
+            if (!session.virtualTime) {
+                session.barrier.await(session.timeOut, TimeUnit.MILLISECONDS);
+            }
+            out = awaitProgress(session, session.timeOut,
+                    millis -> session.transferQueue.poll(millis, TimeUnit.MILLISECONDS),
+                    () -> isProgramIdle(session, WAIT_OUTPUT));
         } catch (InterruptedException e) {
             // Should never happen at normal use
             e.printStackTrace();
             return null;
         } catch (TimeoutException | BrokenBarrierException e) {
-            barrier = new CyclicBarrier(2);
+            session.barrier = new CyclicBarrier(2);
             out = null;
+        } finally {
+            setDriverWait(session, WAIT_NONE);
         }
         if (out == null) {
-            reportError(message.isEmpty() ? "additional output expected." : message, true);
+            reportError(message.isEmpty() ? "additional output expected." : message, null, true, session.testThread);
+            return null;
+        }
+        if (out instanceof String[]) {
+            String[] batch = (String[]) out;
+            for (int i = 1; i < batch.length; i++) {
+                session.pendingOutput.add(batch[i]);
+            }
+            return batch[0];
         }
-        return out;
+        return (String) out;
     }
 
     /**
@@ -624,6 +2694,107 @@ public class Terminal {
         return assertList(message, prefix, randomOrder, expected);
     }
 
+    /**
+     * Tests, whether the next outputs are equal to the expected outputs. The outputs are compared
+     * lazily, one line at a time as they are printed, so the expected outputs do not need to be
+     * stored in memory. The test stops at the first output that is not equal.
+     *
+     * @param expected the Strings the output is compared to
+     * @return true, if {@code nextOutput()} is equal to each String of {@code expected}
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     */
+    public static boolean assertOutputs(Iterator<String> expected) {
+        return assertOutputs("", expected);
+    }
+
+    /**
+     * Tests, whether the next outputs are equal to the expected outputs. The outputs are compared
+     * lazily, one line at a time as they are printed, so the expected outputs do not need to be
+     * stored in memory. The test stops at the first output that is not equal.
+     *
+     * @param message printed if the test fails and the printPolicy permits it
+     * @param expected the Strings the output is compared to
+     * @return true, if {@code nextOutput()} is equal to each String of {@code expected}
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     */
+    public static boolean assertOutputs(String message, Iterator<String> expected) {
+        String previous = null;
+        for (long line = 1; expected.hasNext(); line++) {
+            String next = expected.next();
+            String out = nextOutput(message);
+            if (out == null) {
+                return false;
+            }
+            if (!out.equals(next)) {
+                reportError(message, next + "\n>>> Received: " + out + "\n>>> At output line " + line
+                        + (previous == null ? "" : ", after: " + previous), false);
+                return false;
+            }
+            previous = out;
+        }
+        return true;
+    }
+
+    /**
+     * Tests, whether the next outputs are equal to the expected outputs. The stream is consumed
+     * lazily and closed afterwards.
+     *
+     * @param expected the Strings the output is compared to
+     * @return true, if {@code nextOutput()} is equal to each String of {@code expected}
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     * @see #assertOutputs(Iterator)
+     */
+    public static boolean assertOutputs(Stream<String> expected) {
+        return assertOutputs("", expected);
+    }
+
+    /**
+     * Tests, whether the next outputs are equal to the expected outputs. The stream is consumed
+     * lazily and closed afterwards.
+     *
+     * @param message printed if the test fails and the printPolicy permits it
+     * @param expected the Strings the output is compared to
+     * @return true, if {@code nextOutput()} is equal to each String of {@code expected}
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     * @see #assertOutputs(Iterator)
+     */
+    public static boolean assertOutputs(String message, Stream<String> expected) {
+        try (Stream<String> lines = expected) {
+            return assertOutputs(message, lines.iterator());
+        }
+    }
+
+    /**
+     * Tests, whether the next outputs are equal to the lines of the file with the specified path.
+     * The file is read lazily while comparing.
+     *
+     * @param path the path of the file containing the expected output
+     * @return true, if {@code nextOutput()} is equal to each line of the file
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     * @see #assertOutputs(Iterator)
+     */
+    public static boolean assertOutputsFromFile(Path path) {
+        return assertOutputsFromFile("", path);
+    }
+
+    /**
+     * Tests, whether the next outputs are equal to the lines of the file with the specified path.
+     * The file is read lazily while comparing.
+     *
+     * @param message printed if the test fails and the printPolicy permits it
+     * @param path the path of the file containing the expected output
+     * @return true, if {@code nextOutput()} is equal to each line of the file
+     * @throws CancelException if the test fails and the cancel policy requests a cancel
+     * @see #assertOutputs(Iterator)
+     */
+    public static boolean assertOutputsFromFile(String message, Path path) {
+        try {
+            return assertOutputs(message, Files.lines(path));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Tests, whether the program is terminating as next action.
      *
@@ -642,19 +2813,20 @@ public class Terminal {
      * @throws CancelException if the test fails and the cancel policy requests a cancel
      */
     public static boolean assertExit(String message) {
-        if (!testThread.isAlive()) {
+        Session session = session();
+        if (!session.testThread.isAlive()) {
             reportError("program already terminated.", true);
             return false;
         }
         Throwable t;
         try {
-            t = exitQueue.poll(timeOut, TimeUnit.MILLISECONDS);
+            t = nextExit(session);
         } catch (InterruptedException e) {
             e.printStackTrace();
             return false;
         }
         if (t == null || t.getClass() != ExitException.class) {
-            reportError(message, false);
+            reportError(message, null, false, t == null ? session.testThread : null);
             return false;
         }
         return true;
@@ -715,20 +2887,21 @@ public class Terminal {
      * @see #assertException(Class)
      */
     public static <T extends Throwable> boolean assertException(String message, Class<T> eType) {
-        if (!testThread.isAlive()) {
+        Session session = session();
+        if (!session.testThread.isAlive()) {
             reportError("program already terminated.", true);
             return false;
         }
         Throwable t;
         try {
-            t = exitQueue.poll(timeOut, TimeUnit.MILLISECONDS);
+            t = nextExit(session);
         } catch (InterruptedException e) {
             e.printStackTrace();
             return false;
         }
         if (t == null || !eType.isInstance(t)) {
             String name = eType.getCanonicalName();
-            reportError(message + "\n>>> Expected: " + (name == null ? "Exception" : eType.getCanonicalName()), false);
+            reportError(message, name == null ? "Exception" : name, false, t == null ? session.testThread : null);
             return false;
         }
         return true;
@@ -767,7 +2940,7 @@ public class Terminal {
     }
 
     /**
-     * Terminates the test (more or less) immediately. For this method working properly, the tested
+     * Terminates the test of the current thread (more or less) immediately. For this method working properly, the tested
      * program must not catch RuntimeExceptions (or a supertype) thrown by {@code readLine()} or a
      * print method.
      * <p>
@@ -775,7 +2948,7 @@ public class Terminal {
      * The method itself returns without delay.
      */
     public static void enforceExit() {
-        testThread.interrupt();
+        session().testThread.interrupt();
     }
 
     /**
@@ -803,39 +2976,174 @@ public class Terminal {
      *
      * <p>
      * If the argument is {@code null}, then the string {@code "null"} is printed, otherwise the
-     * object's string value {@code obj.toString()} is printed.
+     * object's string value {@code obj.toString()} is printed. Outside of tests, a
+     * {@code StringBuilder}, {@code StringBuffer} or other {@code CharSequence} is printed without
+     * creating a {@code String}, unless the output is recorded.
      *
      * @param object the {@code Object} to be printed
      * @see String#valueOf(Object)
      */
     public static void printLine(final Object object) {
-        if (!isTesting) {
-            System.out.println(object);
+        Session session;
+        if (!isTesting || !(session = session()).isTesting) {
+            if (object instanceof CharSequence && !(object instanceof String) && recordQueue == null) {
+                PrintStream out = System.out;
+                synchronized (out) {
+                    print(out, (CharSequence) object);
+                    out.println();
+                }
+                return;
+            }
+            // toString() is invoked once, even if the line is recorded
+            String text = String.valueOf(object);
+            if (recordQueue != null) {
+                record(RECORD_OUTPUT, text);
+            }
+            System.out.println(text);
+            return;
+        }
+        printTest(session, String.valueOf(object));
+    }
+
+    /**
+     * Prints the given {@code CharSequence}s, each terminated by a line break. Outside of tests, the
+     * lines are written as a block without creating a {@code String} per line. During tests, all
+     * lines are passed to the test in a single transfer, and the test compares them one after the
+     * other as usual.
+     *
+     * @param lines the lines to be printed
+     * @see #printLine(Object)
+     */
+    public static void printLines(final Iterable<? extends CharSequence> lines) {
+        Session session;
+        if (!isTesting || !(session = session()).isTesting) {
+            PrintStream out = System.out;
+            synchronized (out) {
+                for (CharSequence line : lines) {
+                    if (recordQueue != null) {
+                        record(RECORD_OUTPUT, String.valueOf(line));
+                    }
+                    print(out, line == null ? "null" : line);
+                    out.println();
+                }
+            }
+            return;
+        }
+        List<String> batch = new ArrayList<>();
+        for (CharSequence line : lines) {
+            batch.add(String.valueOf(line));
+        }
+        if (batch.size() == 1) {
+            printTest(session, batch.get(0));
+        } else if (!batch.isEmpty()) {
+            printTest(session, batch.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * Prints the chars without creating a {@code String}, in chunks of at most {@code CHUNK_SIZE}
+     * chars. The stream encodes them like its other output.
+     */
+    private static void print(PrintStream out, CharSequence chars) {
+        if (chars instanceof String) {
+            out.print((String) chars);
             return;
         }
+        int length = chars.length();
+        char[] chunk = new char[Math.min(length, CHUNK_SIZE)];
+        for (int start = 0; start < length; start += CHUNK_SIZE) {
+            int end = Math.min(length, start + CHUNK_SIZE);
+            if (end - start < chunk.length) {
+                chunk = new char[end - start];
+            }
+            if (chars instanceof StringBuilder) {
+                ((StringBuilder) chars).getChars(start, end, chunk, 0);
+            } else if (chars instanceof StringBuffer) {
+                ((StringBuffer) chars).getChars(start, end, chunk, 0);
+            } else {
+                for (int i = start; i < end; i++) {
+                    chunk[i - start] = chars.charAt(i);
+                }
+            }
+            out.print(chunk);
+        }
+    }
 
+    /**
+     * Passes the output, a {@code String} or a batch of Strings, to the test.
+     */
+    private static void printTest(Session session, Object out) {
         if (Thread.currentThread().isInterrupted()) {
             throw new ExitException();
         }
 
-        String s = String.valueOf(object);
         boolean success;
-        try {
-            barrier.await(timeOut << 1, TimeUnit.MILLISECONDS);
-            printInOut(s);
-            success = transferQueue.offer(s, timeOut << 1, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            throw new ExitException();
-        } catch (TimeoutException | BrokenBarrierException e) {
-            barrier = new CyclicBarrier(2);
-            printInOut(s);
-            success = false;
+        if (session.virtualTime) {
+            success = printVirtual(session, out);
+        } else {
+            Thread current = Thread.currentThread();
+            session.programWaits.put(current, WAIT_OUTPUT);
+            try {
+                session.barrier.await(session.timeOut << 1, TimeUnit.MILLISECONDS);
+                printOutput(out);
+                success = session.transferQueue.offer(out, session.timeOut << 1, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new ExitException();
+            } catch (TimeoutException | BrokenBarrierException e) {
+                session.barrier = new CyclicBarrier(2);
+                printOutput(out);
+                success = false;
+            } finally {
+                session.programWaits.remove(current);
+            }
         }
         if (!success) {
             throw new ExitException(Thread.currentThread().isInterrupted(), "unexpected output.");
         }
     }
 
+    private static void printOutput(Object out) {
+        if (out instanceof String[]) {
+            for (String line : (String[]) out) {
+                printInOut(Event.Kind.OUTPUT, line);
+            }
+        } else {
+            printInOut(Event.Kind.OUTPUT, out);
+        }
+    }
+
+    /**
+     * Passes the output to the test in virtual time mode. Instead of the barrier, the output is
+     * offered only while the test is waiting for output.
+     */
+    private static boolean printVirtual(Session session, Object s) {
+        Thread current = Thread.currentThread();
+        boolean[] printed = { false };
+        long[] firstWait = { -1 };
+        session.programWaits.put(current, WAIT_OUTPUT);
+        try {
+            boolean success = awaitProgress(session, 0, millis -> {
+                if (session.driverWait != WAIT_OUTPUT) {
+                    Thread.sleep(millis);
+                    return null;
+                }
+                if (!printed[0]) {
+                    printOutput(s);
+                    printed[0] = true;
+                }
+                return session.transferQueue.offer(s, millis, TimeUnit.MILLISECONDS) ? Boolean.TRUE : null;
+            }, () -> isDriverIdle(session, WAIT_OUTPUT, firstWait)) != null;
+            if (!printed[0]) {
+                printOutput(s);
+            }
+            return success;
+        } catch (InterruptedException e) {
+            throw new ExitException();
+        } finally {
+            session.programWaits.remove(current);
+        }
+    }
+
     /**
      * Prints an array of characters and then terminates the line.
      *
@@ -848,7 +3156,37 @@ public class Terminal {
      * @see String#valueOf(char[])
      */
     public static void printLine(final char[] charArray) {
-        Terminal.printLine(new String(charArray));
+        Terminal.printLine(charArray, 0, charArray.length);
+    }
+
+    /**
+     * Prints a part of an array of characters and then terminates the line. Outside of tests, no
+     * {@code String} is created for printing.
+     *
+     * @param charArray an array of chars
+     * @param offset the index of the first char to be printed
+     * @param length the number of chars to be printed
+     * @throws IndexOutOfBoundsException if {@code offset} and {@code length} do not specify a part
+     *         of the array
+     * @see String#valueOf(char[], int, int)
+     */
+    public static void printLine(final char[] charArray, final int offset, final int length) {
+        Session session;
+        if (!isTesting || !(session = session()).isTesting) {
+            if (offset < 0 || length < 0 || offset > charArray.length - length) {
+                throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+            }
+            if (recordQueue != null) {
+                record(RECORD_OUTPUT, String.valueOf(charArray, offset, length));
+            }
+            if (offset == 0 && length == charArray.length) {
+                System.out.println(charArray);
+            } else {
+                System.out.println(Arrays.copyOfRange(charArray, offset, offset + length));
+            }
+            return;
+        }
+        printTest(session, String.valueOf(charArray, offset, length));
     }
 
     /**
@@ -860,9 +3198,14 @@ public class Terminal {
      *         reached
      */
     public static String readLine() {
-        if (!isTesting) {
+        Session session;
+        if (!isTesting || !(session = session()).isTesting) {
             try {
-                return IN.readLine();
+                String in = IN.readLine();
+                if (in != null && recordQueue != null) {
+                    record(RECORD_INPUT, in);
+                }
+                return in;
             } catch (final IOException e) {
                 /*
                  * The IOException will not occur during tests executed by the praktomat, therefore
@@ -877,15 +3220,23 @@ public class Terminal {
         }
 
         String in;
+        Thread current = Thread.currentThread();
+        long[] firstWait = { -1 };
+        session.programWaits.put(current, WAIT_INPUT);
         try {
-            in = transferQueue.poll(timeOut << 1, TimeUnit.MILLISECONDS);
+            in = (String) awaitProgress(session, session.timeOut << 1,
+                    millis -> session.transferQueue.poll(millis, TimeUnit.MILLISECONDS),
+                    () -> isDriverIdle(session, WAIT_INPUT, firstWait));
         } catch (InterruptedException e) {
             throw new ExitException();
+        } finally {
+            session.programWaits.remove(current);
         }
         if (in == null) {
             throw new ExitException(Thread.currentThread().isInterrupted(), " unexpected readLine() invokation.");
         } else {
-            printInOut("> " + in);
+            session.command = in;
+            printInOut(Event.Kind.INPUT, in);
         }
         return in;
     }
@@ -901,7 +3252,7 @@ public class Terminal {
      * @return the content of the file stored in a {@code String} array
      */
     public static String[] readFile(final String path) {
-        if (!isTesting) {
+        if (!isTesting || !session().isTesting) {
             try (final BufferedReader reader = new BufferedReader(new FileReader(path))) {
                 return reader.lines().toArray(String[]::new);
             } catch (final IOException e) {
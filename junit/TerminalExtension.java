@@ -0,0 +1,79 @@
+import org.junit.jupiter.api.extension.AfterEachCallback;
+import org.junit.jupiter.api.extension.BeforeEachCallback;
+import org.junit.jupiter.api.extension.ExtensionContext;
+import org.junit.jupiter.api.extension.ExtensionContext.Namespace;
+import org.junit.jupiter.api.extension.ParameterContext;
+import org.junit.jupiter.api.extension.ParameterResolver;
+
+/**
+ * JUnit Jupiter extension for testing with {@code Terminal}. Every test method gets a fresh test
+ * session state with the {@code CANCEL_ASSERT} cancelPolicy and the {@code PRINT_NONE}
+ * printPolicy, so failures and mismatches are reported by JUnit as failed assertions instead of
+ * console text. The policies can still be changed within the test method. Mismatches detected by
+ * the tested program itself (e.g. an unexpected {@code readLine()} or output) are counted when the
+ * program fails, so after the test method the extension waits up to the {@code timeOut} for the
+ * program to terminate and fails the test if the program failed. So a test should end the tested
+ * program, e.g. by {@code testExit}, instead of leaving it waiting for input.
+ * <p>
+ * As the session state is bound to the thread executing the test, independent tests can be run
+ * concurrently by enabling {@code junit.jupiter.execution.parallel.enabled}. The current
+ * {@code Terminal.Session} can be injected as parameter of the test methods.
+ * <p>
+ * Code Example: <blockquote>
+ *
+ * <pre>
+ * <code>
+ * &#64;ExtendWith(TerminalExtension.class)
+ * &#64;Execution(ExecutionMode.CONCURRENT)
+ * public class StudyPortalTest {
+ *      &#64;Test
+ *      public void basicTest(Terminal.Session session) {
+ *              initTestSession(() -&gt; StudyPortal.main(new String[0]));
+ *              testOutput("add-student max;mustermann;123456", "Ok");
+ *              testExit("quit");
+ *      }
+ * }
+ * </code>
+ * </pre>
+ *
+ * </blockquote>
+ */
+public class TerminalExtension implements BeforeEachCallback, AfterEachCallback, ParameterResolver {
+    private static final Namespace NAMESPACE = Namespace.create(TerminalExtension.class);
+    private static final String FAILURES = "failures";
+
+    @Override
+    public void beforeEach(ExtensionContext context) {
+        Terminal.resetSession();
+        Terminal.setPrintPolicy(Terminal.PRINT_NONE);
+        Terminal.setCancelPolicy(Terminal.CANCEL_ASSERT);
+        context.getStore(NAMESPACE).put(FAILURES, Terminal.session().getFailures());
+    }
+
+    @Override
+    public void afterEach(ExtensionContext context) {
+        Terminal.Session session = Terminal.session();
+        try {
+            // failures of the test itself are already thrown by CANCEL_ASSERT
+            if (!context.getExecutionException().isPresent()) {
+                session.awaitProgram();
+                int failures = context.getStore(NAMESPACE).get(FAILURES, Integer.class);
+                if (session.getFailures() != failures) {
+                    throw new AssertionError(session.getProgramFailure());
+                }
+            }
+        } finally {
+            Terminal.resetSession();
+        }
+    }
+
+    @Override
+    public boolean supportsParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        return parameterContext.getParameter().getType() == Terminal.Session.class;
+    }
+
+    @Override
+    public Object resolveParameter(ParameterContext parameterContext, ExtensionContext extensionContext) {
+        return Terminal.session();
+    }
+}